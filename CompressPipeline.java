@@ -0,0 +1,321 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Compresses many image files into drawing files as a three stage pipeline,
+// so that reading, compressing and writing different files overlap instead of
+// the CPU waiting on the disk:
+//
+// reader -> [read queue] -> compress workers -> [write queue] -> writer
+//
+// The reader and writer use AsynchronousFileChannel, and both queues are
+// bounded so that a slow stage holds back the ones in front of it rather
+// than filling memory with files waiting their turn. A file that fails at any
+// stage is recorded in the report and the rest carry on.
+public class CompressPipeline {
+
+    // How busy one stage of the pipeline was.
+    public static class Stage {
+        final String name;
+        final AtomicLong files = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong first = new AtomicLong(Long.MAX_VALUE);
+        final AtomicLong last = new AtomicLong(Long.MIN_VALUE);
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        // Record a file passing through the stage between the given times.
+        void done(long start, long end, long size) {
+            files.incrementAndGet();
+            bytes.addAndGet(size);
+            first.accumulateAndGet(start, Math::min);
+            last.accumulateAndGet(end, Math::max);
+        }
+
+        //Seconds between the stage starting its first file and finishing its last.
+        public double seconds() {
+            return files.get() == 0 ? 0 : Math.max(last.get() - first.get(), 1) / 1e9;
+        }
+
+        public long files() {
+            return files.get();
+        }
+
+        public long bytes() {
+            return bytes.get();
+        }
+
+        public String toString() {
+            double s = Math.max(seconds(), 1e-9);
+            return String.format("%-8s %d files, %d bytes in %.3f s, %.1f files/s, %.2f MB/s",
+                    name, files(), bytes(), seconds(), files() / s, bytes() / s / 1e6);
+        }
+    }
+
+    // What happened to a whole run of the pipeline.
+    public static class Report {
+        public final Stage read = new Stage("read");
+        public final Stage compress = new Stage("compress");
+        public final Stage write = new Stage("write");
+        final Map<Path, String> errors = new ConcurrentSkipListMap<Path, String>();
+        double seconds;
+
+        //The files that failed, and the stage and reason they failed.
+        public Map<Path, String> errors() {
+            return errors;
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append(read).append('\n');
+            s.append(compress).append('\n');
+            s.append(write).append('\n');
+            s.append(String.format("total    %d files (%d failed) in %.3f s%n", write.files() + errors.size(), errors.size(), seconds));
+            for (Map.Entry<Path, String> e : errors.entrySet())
+                s.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+            return s.toString();
+        }
+    }
+
+    // One file on its way through the pipeline.
+    private static class Job {
+        final Path source;
+        final Path target;
+        ByteBuffer data;
+
+        Job(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+        }
+    }
+
+    // Put on a queue to tell the stage after it that there is nothing more.
+    private static final Job END = new Job(null, null);
+
+    // How often to check that the other stages are still alive while waiting
+    // on them
+    private static final long POLL_MILLIS = 100;
+
+    private final int workers;
+    private final int capacity;
+
+    // Run with the given number of compress workers, and at most "capacity"
+    // files waiting between each pair of stages.
+    public CompressPipeline(int workers, int capacity) {
+        if (workers < 1)
+            throw new IllegalArgumentException("Need at least one compress worker, not " + workers);
+        if (capacity < 1)
+            throw new IllegalArgumentException("Need room for at least one file between stages, not " + capacity);
+        this.workers = workers;
+        this.capacity = capacity;
+    }
+
+    public CompressPipeline() {
+        this(Runtime.getRuntime().availableProcessors(), 16);
+    }
+
+    // Compress each source image into its target drawing file, returning once
+    // every file has been written or has failed.
+    public Report run(Map<Path, Path> jobs) throws InterruptedException {
+        Report report = new Report();
+        long started = System.nanoTime();
+        BlockingQueue<Job> toCompress = new ArrayBlockingQueue<Job>(capacity);
+        BlockingQueue<Job> toWrite = new ArrayBlockingQueue<Job>(capacity);
+        // Reads in flight count against the read queue, so the reader can't
+        // get further ahead of the workers than the queue allows.
+        Semaphore readSlots = new Semaphore(capacity);
+        Semaphore writeSlots = new Semaphore(capacity);
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers + 1);
+        ArrayList<Future<?>> stages = new ArrayList<Future<?>>();
+        for (int k = 0; k < workers; k++)
+            stages.add(pool.submit(() -> compressAll(toCompress, toWrite, readSlots, report)));
+        Future<?> writer = pool.submit(() -> writeAll(toWrite, writeSlots, report));
+        stages.add(writer);
+        try {
+            // Read on this thread, one permit per file in flight.
+            Phaser reads = new Phaser(1);
+            for (Map.Entry<Path, Path> e : jobs.entrySet()) {
+                acquire(readSlots, 1, stages);
+                reads.register();
+                read(new Job(e.getKey(), e.getValue()), toCompress, readSlots, reads, report);
+            }
+            reads.arriveAndAwaitAdvance();
+            for (int k = 0; k < workers; k++)
+                put(toCompress, END, stages);
+            for (Future<?> stage : stages.subList(0, workers))
+                stage.get();
+            put(toWrite, END, stages);
+            writer.get();
+            // Wait for the last writes to complete.
+            acquire(writeSlots, capacity, stages);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Pipeline stage failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        report.seconds = (System.nanoTime() - started) / 1e9;
+        return report;
+    }
+
+    // Wait for permits, or give up if a stage has died, since then they might
+    // never be released.
+    private static void acquire(Semaphore slots, int permits, List<Future<?>> stages)
+            throws InterruptedException, ExecutionException {
+        while (!slots.tryAcquire(permits, POLL_MILLIS, TimeUnit.MILLISECONDS))
+            checkStages(stages);
+    }
+
+    // Wait for room on a queue, or give up if a stage has died, since then it
+    // might never be drained.
+    private static void put(BlockingQueue<Job> queue, Job job, List<Future<?>> stages)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(job, POLL_MILLIS, TimeUnit.MILLISECONDS))
+            checkStages(stages);
+    }
+
+    // Throw the failure of any stage that has died.
+    private static void checkStages(List<Future<?>> stages) throws InterruptedException, ExecutionException {
+        for (Future<?> stage : stages)
+            if (stage.isDone())
+                stage.get();
+    }
+
+    // Start reading a whole file, handing it to the compress queue once done.
+    private static void read(Job job, BlockingQueue<Job> toCompress, Semaphore readSlots,
+                             Phaser reads, Report report) {
+        long start = System.nanoTime();
+        AsynchronousFileChannel channel;
+        try {
+            channel = AsynchronousFileChannel.open(job.source, StandardOpenOption.READ);
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large");
+            job.data = ByteBuffer.allocate((int) size);
+        } catch (IOException e) {
+            failed(report.read, job, e, report);
+            readSlots.release();
+            reads.arriveAndDeregister();
+            return;
+        }
+        channel.read(job.data, 0, job, new CompletionHandler<Integer, Job>() {
+            public void completed(Integer count, Job job) {
+                if (count >= 0 && job.data.hasRemaining()) {
+                    channel.read(job.data, job.data.position(), job, this);
+                    return;
+                }
+                close(channel);
+                job.data.flip();
+                report.read.done(start, System.nanoTime(), job.data.remaining());
+                // There is always room, since each job in the queue holds a slot.
+                toCompress.add(job);
+                reads.arriveAndDeregister();
+            }
+
+            public void failed(Throwable e, Job job) {
+                close(channel);
+                CompressPipeline.failed(report.read, job, e, report);
+                readSlots.release();
+                reads.arriveAndDeregister();
+            }
+        });
+    }
+
+    // Parse and compress files until told to stop.
+    private static void compressAll(BlockingQueue<Job> toCompress, BlockingQueue<Job> toWrite,
+                                    Semaphore readSlots, Report report) {
+        try {
+            for (Job job = toCompress.take(); job != END; job = toCompress.take()) {
+                readSlots.release();
+                long start = System.nanoTime();
+                try {
+                    int size = job.data.remaining();
+                    Image image = new Image(new BufferedReader(new InputStreamReader(
+                            new ByteArrayInputStream(job.data.array(), 0, size), StandardCharsets.UTF_8)));
+                    StringWriter text = new StringWriter();
+                    image.compress().write(text);
+                    job.data = StandardCharsets.UTF_8.encode(text.toString());
+                    report.compress.done(start, System.nanoTime(), size);
+                    toWrite.put(job);
+                } catch (IOException | RuntimeException e) {
+                    failed(report.compress, job, e, report);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Start writing each compressed file until told to stop.
+    private static void writeAll(BlockingQueue<Job> toWrite, Semaphore writeSlots, Report report) {
+        try {
+            for (Job job = toWrite.take(); job != END; job = toWrite.take()) {
+                writeSlots.acquire();
+                write(job, writeSlots, report);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void write(Job job, Semaphore writeSlots, Report report) {
+        long start = System.nanoTime();
+        long size = job.data.remaining();
+        AsynchronousFileChannel channel;
+        try {
+            channel = AsynchronousFileChannel.open(job.target, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            failed(report.write, job, e, report);
+            writeSlots.release();
+            return;
+        }
+        channel.write(job.data, 0, job, new CompletionHandler<Integer, Job>() {
+            public void completed(Integer count, Job job) {
+                if (job.data.hasRemaining()) {
+                    channel.write(job.data, job.data.position(), job, this);
+                    return;
+                }
+                close(channel);
+                report.write.done(start, System.nanoTime(), size);
+                writeSlots.release();
+            }
+
+            public void failed(Throwable e, Job job) {
+                close(channel);
+                CompressPipeline.failed(report.write, job, e, report);
+                writeSlots.release();
+            }
+        });
+    }
+
+    // Record why a file failed against its source, along with the stage it
+    // failed in and, for a write, the file being written.
+    private static void failed(Stage stage, Job job, Throwable e, Report report) {
+        String message = e.getMessage() == null ? e.toString() : e.getMessage();
+        if (stage == report.write) {
+            if (e instanceof NoSuchFileException)
+                message = "Directory not found";
+            report.errors.put(job.source, "write to " + job.target + " failed: " + message);
+        } else {
+            if (e instanceof NoSuchFileException)
+                message = "File not found";
+            report.errors.put(job.source, stage.name + " failed: " + message);
+        }
+    }
+
+    private static void close(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more to do with it either way
+        }
+    }
+}
@@ -39,13 +39,12 @@ class DrawingCommand {
   // left 10 3
   // up 1
   // up 2 c
-  public DrawingCommand(String s) {
+  public DrawingCommand(String s) throws BadFormat {
     // Split the string by whitespace
     String[] elems = s.split("\\s");
 
     if (elems.length != 3 && elems.length != 2) {
-      System.out.println("Bad command (should have 2 or 3 parts): " + s);
-      System.exit(1);
+      throw new BadFormat("Bad command (should have 2 or 3 parts): " + s);
     }
 
     if (elems[0].equals("up"))
@@ -56,17 +55,14 @@ class DrawingCommand {
       dir = Direction.LEFT;
     else if (elems[0].equals("right"))
       dir = Direction.RIGHT;
-    else {
-      System.out.println("Bad direction (should be up, down, left, or right): " + elems[0]);
-      System.exit(1);
-    }
+    else
+      throw new BadFormat("Bad direction (should be up, down, left, or right): " + elems[0]);
 
     try {
       distance = Integer.parseInt(elems[1]);
     }
     catch(NumberFormatException e) {
-      System.out.println("Bad distance (should be a number): " + elems[1]);
-      System.exit(1);
+      throw new BadFormat("Bad distance (should be a number): " + elems[1]);
     }
     // Check for the optional colour
     if (elems.length == 2)
@@ -79,17 +75,34 @@ class DrawingCommand {
           throw new NumberFormatException();
       }
       catch(NumberFormatException e) {
-        System.out.println("Bad colour (should be a hex number betweeen 0 and f): " + elems[2]);
-        System.exit(1);
+        throw new BadFormat("Bad colour (should be a hex number betweeen 0 and f): " + elems[2]);
       }
     }
   }
 
+  // Build a command directly, without going through its text form. A colour
+  // of -1 means move without painting.
+  public DrawingCommand(Direction dir, int distance, int colour) {
+    this.dir = dir;
+    this.distance = distance;
+    this.paint = colour >= 0;
+    this.colour = paint ? colour : 0;
+  }
+
   public String toString() {
     return (dir.toString() + " " + distance + " " + (paint?Integer.toHexString(colour):""));
   }
 }
 
+// Something that drawing commands can paint onto.
+interface Canvas {
+  //Changes the colour of a single pixel.
+  void paint(int y, int x, int colour) throws BadCommand;
+
+  //Changes the colour of the pixels from "from" to "to" inclusive on row y.
+  void paintRow(int y, int from, int to, int colour) throws BadCommand;
+}
+
 class BadCommand extends Exception {
   //A bad command error that can be constructed with or without an error message.
   BadCommand(){
@@ -100,6 +113,14 @@ class BadCommand extends Exception {
     }
 }
 
+// An image or drawing file that can't be read because its contents are
+// malformed, as opposed to the file being missing or unreadable.
+class BadFormat extends IOException {
+  BadFormat(String errorMessage){
+      super(errorMessage);
+    }
+}
+
 // Represent a picture as the height and width, and a sequence of drawing
 // commands to build it. Also has an initial background colour. Each command
 // starts at the current location and draws a certain number of spaces to get
@@ -148,48 +169,49 @@ public class Drawing {
   // Read in an ArrayList of drawing commands from a file. There should be
   // exactly 1 command per line. The first two lines should be 2 numbers for
   // the height and width rather than commands. The third line is the
-  // background colour.
-  public Drawing(String filename) {
-    commands = new ArrayList<DrawingCommand>();
-    try {
-      BufferedReader in = new BufferedReader(new FileReader(filename));
-      String s = in.readLine();
-      try {
-        height = Integer.parseInt(s);
-      }
-      catch(NumberFormatException e) {
-        System.out.println("Expected the height on the first line: " + s);
-        System.exit(1);
-      }
+  // background colour. Blank lines are ignored.
+  public Drawing(String filename) throws IOException {
+    try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+      commands = new ArrayList<DrawingCommand>();
+      read(in);
+    }
+  }
 
-      s = in.readLine();
-      try {
-        width = Integer.parseInt(s);
-      }
-      catch(NumberFormatException e) {
-        System.out.println("Expected the width on the second line: " + s);
-        System.exit(1);
-      }
+  // Read in a drawing in the same format as above from an open reader,
+  // one line at a time.
+  public Drawing(BufferedReader in) throws IOException {
+    commands = new ArrayList<DrawingCommand>();
+    read(in);
+  }
 
-      s = in.readLine();
-      try {
-        background = Integer.parseInt(s,16);
-      }
-      catch(NumberFormatException e) {
-        System.out.println("Expected the background colour on the third line: " + s);
-        System.exit(1);
-      }
+  private void read(BufferedReader in) throws IOException {
+    String s = in.readLine();
+    try {
+      height = Integer.parseInt(s);
+    }
+    catch(NumberFormatException e) {
+      throw new BadFormat("Expected the height on the first line: " + s);
+    }
 
-      for (s = in.readLine(); s != null; s = in.readLine())
-        commands.add(new DrawingCommand(s));
+    s = in.readLine();
+    try {
+      width = Integer.parseInt(s);
     }
-    catch (FileNotFoundException e) {
-      System.out.println("File not found: " + filename);
-      System.exit(1);
+    catch(NumberFormatException e) {
+      throw new BadFormat("Expected the width on the second line: " + s);
     }
-    catch (IOException e) {
-      System.exit(2);
+
+    s = in.readLine();
+    try {
+      background = Integer.parseInt(s,16);
     }
+    catch(NumberFormatException e) {
+      throw new BadFormat("Expected the background colour on the third line: " + s);
+    }
+
+    for (s = in.readLine(); s != null; s = in.readLine())
+      if (!s.isEmpty())
+        commands.add(new DrawingCommand(s));
   }
 
   // create an empty drawing of the given dimensions
@@ -205,6 +227,18 @@ public class Drawing {
 
       commands.add(c);
   }
+  // Write out the drawing in the same format it is read in, one command at a
+  // time rather than building the whole text first.
+  public void write(Writer out) throws IOException {
+    out.write(height + "\n");
+    out.write(width + "\n");
+    out.write(Integer.toHexString(background) + "\n");
+    for (DrawingCommand command : commands) {
+      out.write(command.toString());
+      out.write('\n');
+    }
+  }
+
   public String toString() {
     StringBuilder s = new StringBuilder();
     s.append(height + "\n");
@@ -224,9 +258,21 @@ public class Drawing {
   // is made to paint outside of the picture.
   // (5 marks)
   public Image draw() throws BadCommand {
+    return draw(new Image(height, width, background));
+  }
+
+  // Draw into a run-length encoded image instead, so that horizontal
+  // commands splice in a run rather than painting pixel by pixel.
+  public RunImage drawRuns() throws BadCommand {
+    return draw(new RunImage(height, width, background));
+  }
+
+  // Execute the drawing commands on top of an existing image, which should
+  // already be filled with the background colour and match the drawing's
+  // dimensions.
+  public <C extends Canvas> C draw(C image) throws BadCommand {
     int pointerX = 0;
     int pointerY = 0;
-    Image image = new Image(height, width, background);
     for (DrawingCommand c: commands) {
           if ( pointerX >= -1 && pointerX <= width + 1 && pointerY >= -1 && pointerY <= height + 1 || !c.paint) {
              if (!c.paint){
@@ -261,15 +307,11 @@ public class Drawing {
                         pointerY = pointerY + c.distance;
                         break;
                         case LEFT:
-                            for(int i = pointerX - 1; i >= pointerX-c.distance; i--){
-                                 image.paint(pointerY, i, c.colour);
-                            }
+                            image.paintRow(pointerY, pointerX - c.distance, pointerX - 1, c.colour);
                             pointerX = pointerX - c.distance;
                             break;
                         case RIGHT:
-                        for(int i = pointerX + 1; i <= pointerX+c.distance; i++){
-                            image.paint(pointerY, i, c.colour);
-                        }
+                        image.paintRow(pointerY, pointerX + 1, pointerX + c.distance, c.colour);
                         pointerX = pointerX + c.distance;
                         break;
                      }
@@ -292,7 +334,7 @@ public class Drawing {
   }
   
 
-  public static void main(String[] args) throws BadCommand{
+  public static void main(String[] args) throws BadCommand, IOException {
     // A test to read in an file of drawing commands, drawing them, and printing them out, as well as outputting a PNG image.
     Drawing d = new Drawing(args[0]);
     Image test = d.draw();
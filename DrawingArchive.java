@@ -0,0 +1,347 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+// A single file holding many drawings in a compact binary form, so that
+// thousands of them can be kept together instead of as separate text files.
+//
+// The file is a sequence of encoded drawings followed by an index and a fixed
+// size trailer:
+//
+// [drawing][drawing]...[index][trailer]
+//
+// The index lists the name, offset, length, dimensions and CRC32 of every
+// drawing, and the trailer holds the offset of the index, the CRC32 of the
+// index and a magic number. The archive is only ever appended to: adding more
+// drawings writes them after the existing trailer, followed by a new index
+// covering everything, so nothing already written is ever overwritten. Readers
+// map the file into memory and only look at the last complete index, so
+// opening one drawing is a hash lookup and a slice of the mapping. If a writer
+// died before finishing, whatever it left after the last trailer is ignored
+// by readers and cut off by the next writer, as long as it is no more than
+// RECOVERY_LIMIT bytes.
+//
+// Each drawing is encoded as
+//
+// int height, int width, byte background, int number of commands
+//
+// followed by 5 bytes per command: the direction in the top bits of the first
+// byte, whether it paints in bit 4 and the colour in the low 4 bits, then the
+// distance as an int.
+public class DrawingArchive implements Closeable {
+
+    static final int MAGIC = 0x44434152; // "DCAR"
+    static final int TRAILER_SIZE = 16;
+    // The smallest possible index entry, one with an empty name.
+    static final int MIN_ENTRY_SIZE = 30;
+    // How far back from the end of the file to look for the last trailer
+    static final long RECOVERY_LIMIT = 256L << 20;
+    // How much of the file to read at a time while looking for it
+    static final int SCAN_CHUNK = 1 << 20;
+
+    // Where a drawing lives in the archive and what it looks like.
+    public static class Entry {
+        public final String name;
+        public final long offset;
+        public final int length;
+        public final int height;
+        public final int width;
+        public final long hash;
+
+        Entry(String name, long offset, int length, int height, int width, long hash) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.height = height;
+            this.width = width;
+            this.hash = hash;
+        }
+
+        public String toString() {
+            return name + " " + height + "x" + width + " at " + offset + " (" + length + " bytes)";
+        }
+    }
+
+    private final FileChannel channel;
+    // The end of the last complete trailer, which is the end of the file
+    // unless a writer failed part way through.
+    private final long end;
+    private final LinkedHashMap<String, Entry> entries;
+    // The whole file when it fits in a single mapping, otherwise null and each
+    // drawing is read on its own.
+    private final MappedByteBuffer mapped;
+
+    private DrawingArchive(FileChannel channel) throws IOException {
+        this.channel = channel;
+        long size = channel.size();
+        mapped = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+
+        if (size < TRAILER_SIZE)
+            throw new IOException("Not a drawing archive (too short)");
+        long trailer = findTrailer(size);
+        if (trailer < 0)
+            throw new IOException("Not a drawing archive (no valid trailer in the last "
+                    + Math.min(size, RECOVERY_LIMIT) + " bytes)");
+        end = trailer + TRAILER_SIZE;
+        long indexOffset = read(trailer, TRAILER_SIZE).getLong();
+        entries = readIndex(read(indexOffset, (int) (trailer - indexOffset)), indexOffset);
+    }
+
+    // Find the last trailer whose index is intact, or -1 if there isn't one.
+    // It is normally right at the end, otherwise read back through the file a
+    // chunk at a time looking for the magic number that ends each trailer.
+    private long findTrailer(long size) throws IOException {
+        if (isTrailer(size - TRAILER_SIZE))
+            return size - TRAILER_SIZE;
+        long limit = Math.max(0, size - TRAILER_SIZE - RECOVERY_LIMIT);
+        for (long last = size - TRAILER_SIZE - 1; last >= limit; ) {
+            long first = Math.max(limit, last - SCAN_CHUNK + 1);
+            // The magic numbers of trailers starting from first to last
+            ByteBuffer magics = read(first + TRAILER_SIZE - 4, (int) (last - first) + 4);
+            for (long position = last; position >= first; position--)
+                if (magics.getInt((int) (position - first)) == MAGIC && isTrailer(position))
+                    return position;
+            last = first - 1;
+        }
+        return -1;
+    }
+
+    // Whether there is a trailer at the given position pointing to an index
+    // that matches its CRC.
+    private boolean isTrailer(long position) throws IOException {
+        ByteBuffer trailer = read(position, TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        int hash = trailer.getInt();
+        if (trailer.getInt() != MAGIC || indexOffset < 0 || indexOffset > position
+                || position - indexOffset > Integer.MAX_VALUE)
+            return false;
+        // Read the index in chunks, in case this isn't really a trailer and the
+        // offset points at something huge.
+        CRC32 crc = new CRC32();
+        for (long offset = indexOffset; offset < position; offset += SCAN_CHUNK)
+            crc.update(read(offset, (int) Math.min(SCAN_CHUNK, position - offset)));
+        return (int) crc.getValue() == hash;
+    }
+
+    // Open an existing archive for reading.
+    public static DrawingArchive open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new DrawingArchive(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    //The names of all the drawings, in the order they were added.
+    public Set<String> names() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    //Looks up the index entry for a drawing, or null if there isn't one.
+    public Entry entry(String name) {
+        return entries.get(name);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Decode a single drawing, checking it against the hash in the index.
+    // Returns null if there is no drawing with that name.
+    public Drawing get(String name) throws IOException {
+        Entry e = entries.get(name);
+        if (e == null)
+            return null;
+        ByteBuffer data = read(e.offset, e.length);
+        if (crc(data.duplicate()) != e.hash)
+            throw new IOException("Corrupt drawing in archive: " + name);
+        return decode(data);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // A slice of the mapping, or for a file too large to map in one piece a
+    // copy read into the heap. Mapping each piece on its own would leave a
+    // mapping behind per call until the garbage collector got to it.
+    private ByteBuffer read(long offset, int length) throws IOException {
+        if (mapped != null)
+            return mapped.slice((int) offset, length);
+        ByteBuffer data = ByteBuffer.allocate(length);
+        while (data.hasRemaining())
+            if (channel.read(data, offset + data.position()) < 0)
+                throw new EOFException("Unexpected end of archive");
+        return data.flip();
+    }
+
+    // Read the index, checking that every drawing lies before it.
+    private static LinkedHashMap<String, Entry> readIndex(ByteBuffer index, long indexOffset) throws IOException {
+        try {
+            int count = index.getInt();
+            if (count < 0 || count > index.remaining() / MIN_ENTRY_SIZE)
+                throw new IOException("Not a drawing archive (bad index size)");
+            LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(count * 2);
+            for (int k = 0; k < count; k++) {
+                byte[] name = new byte[index.getShort() & 0xffff];
+                index.get(name);
+                Entry e = new Entry(new String(name, StandardCharsets.UTF_8), index.getLong(), index.getInt(),
+                        index.getInt(), index.getInt(), index.getLong());
+                if (e.offset < 0 || e.length < 0 || e.offset > indexOffset - e.length)
+                    throw new IOException("Corrupt archive index: " + e.name + " outside the archive");
+                entries.put(e.name, e);
+            }
+            return entries;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Not a drawing archive (truncated index)");
+        }
+    }
+
+    // Encode a drawing into its binary form.
+    static byte[] encode(Drawing d) {
+        ByteBuffer out = ByteBuffer.allocate(13 + 5 * d.commands.size());
+        out.putInt(d.height);
+        out.putInt(d.width);
+        out.put((byte) d.background);
+        out.putInt(d.commands.size());
+        for (DrawingCommand c : d.commands) {
+            out.put((byte) (c.dir.ordinal() << 5 | (c.paint ? 0x10 : 0) | c.colour));
+            out.putInt(c.distance);
+        }
+        return out.array();
+    }
+
+    // Decode a drawing from its binary form.
+    static Drawing decode(ByteBuffer in) throws IOException {
+        try {
+            Direction[] directions = Direction.values();
+            Drawing d = new Drawing(in.getInt(), in.getInt(), in.get());
+            int count = in.getInt();
+            d.commands.ensureCapacity(count);
+            for (int k = 0; k < count; k++) {
+                int b = in.get() & 0xff;
+                if ((b >>> 5) >= directions.length)
+                    throw new IOException("Bad direction in archived drawing");
+                d.addCommand(new DrawingCommand(directions[b >>> 5], in.getInt(), (b & 0x10) != 0 ? b & 15 : -1));
+            }
+            return d;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated drawing in archive");
+        }
+    }
+
+    static long crc(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    // Adds drawings to the end of an archive, creating it if it doesn't exist.
+    // Nothing is visible to readers until the writer is closed, which writes
+    // the new index and trailer. The file is locked while the writer is open so
+    // that two writers can't interleave, and if anything fails the file is cut
+    // back to where it was so nothing half written is left behind.
+    public static class Writer implements Closeable {
+
+        private final FileChannel channel;
+        private final LinkedHashMap<String, Entry> entries;
+        // Where this writer started appending
+        private final long start;
+        private long position;
+
+        public Writer(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                try {
+                    channel.lock();
+                } catch (OverlappingFileLockException e) {
+                    throw new IOException("Archive is already being written: " + path);
+                }
+                if (channel.size() > 0) {
+                    // Closing this would close the channel, and the lock with it.
+                    DrawingArchive existing = new DrawingArchive(channel);
+                    entries = new LinkedHashMap<String, Entry>(existing.entries);
+                    start = existing.end;
+                } else {
+                    entries = new LinkedHashMap<String, Entry>();
+                    start = 0;
+                }
+                // Drop anything an earlier writer left after the last trailer.
+                channel.truncate(start);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            position = start;
+        }
+
+        // Add a drawing under the given name, replacing any earlier drawing
+        // with the same name.
+        public void add(String name, Drawing d) throws IOException {
+            if (name.getBytes(StandardCharsets.UTF_8).length > 0xffff)
+                throw new IOException("Drawing name too long: " + name);
+            byte[] data = encode(d);
+            long offset = position;
+            try {
+                writeFully(ByteBuffer.wrap(data));
+            } catch (IOException e) {
+                rollBack(offset, e);
+                throw e;
+            }
+            entries.put(name, new Entry(name, offset, data.length, d.height, d.width, crc(ByteBuffer.wrap(data))));
+        }
+
+        public void close() throws IOException {
+            try {
+                long indexOffset = position;
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream index = new DataOutputStream(bytes);
+                index.writeInt(entries.size());
+                for (Entry e : entries.values()) {
+                    byte[] name = e.name.getBytes(StandardCharsets.UTF_8);
+                    index.writeShort(name.length);
+                    index.write(name);
+                    index.writeLong(e.offset);
+                    index.writeInt(e.length);
+                    index.writeInt(e.height);
+                    index.writeInt(e.width);
+                    index.writeLong(e.hash);
+                }
+                byte[] data = bytes.toByteArray();
+                ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+                trailer.putLong(indexOffset).putInt((int) crc(ByteBuffer.wrap(data))).putInt(MAGIC).flip();
+                writeFully(ByteBuffer.wrap(data));
+                writeFully(trailer);
+                channel.force(false);
+            } catch (IOException e) {
+                rollBack(start, e);
+                throw e;
+            } finally {
+                channel.close();
+            }
+        }
+
+        private void writeFully(ByteBuffer data) throws IOException {
+            while (data.hasRemaining())
+                position += channel.write(data, position);
+        }
+
+        // Cut the file back after a failed write, keeping the original error
+        // if that fails too.
+        private void rollBack(long to, IOException cause) {
+            try {
+                channel.truncate(to);
+                position = to;
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+// Command line entry point for batch work over many images and drawings.
+//
+// java DrawingTool <command> [-j threads] [-o output] [-q] <files...>
+//
+// compress  turn each image file into a drawing file, <name>.drawing
+// render    draw each drawing file and save it as <name>.png
+// verify    compress each image file, draw it back, and check that it matches
+// convert   pack drawing files into the archive given by -o, or with -x
+//           unpack an archive into drawing files
+//
+// Files can be given as paths, glob patterns such as 'test-files/test-image*',
+// or '-' to read one path per line from standard input. Files are processed in
+// parallel on -j threads (the number of processors by default), and timing is
+// printed for each file unless -q is given, followed by totals. The exit code
+// is 0 if everything succeeded, 1 if any file failed and 2 for bad usage.
+public class DrawingTool {
+
+    static final int OK = 0;
+    static final int FAILED = 1;
+    static final int USAGE = 2;
+
+    // What happened to a single file.
+    static class Result {
+        final Path file;
+        final String error;
+        final long nanos;
+        final long bytes;
+        final long commands;
+
+        Result(Path file, String error, long nanos, long bytes, long commands) {
+            this.file = file;
+            this.error = error;
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.commands = commands;
+        }
+    }
+
+    // The work done on one file, returning the number of drawing commands
+    // produced or consumed.
+    interface Task {
+        long run(Path file) throws IOException, BadCommand;
+    }
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private String command;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Path output;
+    private boolean extract;
+    private boolean quiet;
+    private final ArrayList<String> patterns = new ArrayList<String>();
+
+    DrawingTool(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args) {
+        System.exit(new DrawingTool(System.out, System.err).run(args));
+    }
+
+    // Run the tool and return its exit code.
+    int run(String[] args) {
+        if (!parseArgs(args))
+            return usage();
+        List<Path> files;
+        try {
+            files = expand(patterns);
+        } catch (IOException e) {
+            err.println("Unable to list files: " + e.getMessage());
+            return FAILED;
+        }
+        if (files.isEmpty()) {
+            err.println("No files matched");
+            return FAILED;
+        }
+
+        if (output != null && !command.equals("convert")) {
+            try {
+                Files.createDirectories(output);
+            } catch (IOException e) {
+                err.println("Unable to create output directory " + output + ": " + e.getMessage());
+                return FAILED;
+            }
+        }
+
+        switch (command) {
+            case "compress":
+                return runAll(files, this::compress);
+            case "render":
+                return runAll(files, this::render);
+            case "verify":
+                return runAll(files, this::verify);
+            case "convert":
+                if (extract)
+                    return extract(files);
+                if (output == null) {
+                    err.println("convert needs an archive to write to (-o)");
+                    return USAGE;
+                }
+                try (DrawingArchive.Writer archive = new DrawingArchive.Writer(output)) {
+                    return runAll(files, file -> pack(archive, file));
+                } catch (IOException e) {
+                    err.println("Unable to write archive " + output + ": " + e.getMessage());
+                    return FAILED;
+                }
+            default:
+                err.println("Unknown command: " + command);
+                return usage();
+        }
+    }
+
+    private boolean parseArgs(String[] args) {
+        for (int k = 0; k < args.length; k++) {
+            String arg = args[k];
+            if (arg.equals("-j") && k + 1 < args.length) {
+                try {
+                    threads = Integer.parseInt(args[++k]);
+                } catch (NumberFormatException e) {
+                    err.println("Bad thread count (should be a number): " + args[k]);
+                    return false;
+                }
+                if (threads < 1) {
+                    err.println("Bad thread count (should be at least 1): " + threads);
+                    return false;
+                }
+            } else if (arg.equals("-o") && k + 1 < args.length) {
+                output = Paths.get(args[++k]);
+            } else if (arg.equals("-x")) {
+                extract = true;
+            } else if (arg.equals("-q")) {
+                quiet = true;
+            } else if (arg.startsWith("-") && !arg.equals("-")) {
+                err.println("Unknown option: " + arg);
+                return false;
+            } else if (command == null) {
+                command = arg;
+            } else {
+                patterns.add(arg);
+            }
+        }
+        return command != null && !patterns.isEmpty();
+    }
+
+    private int usage() {
+        err.println("usage: java DrawingTool compress|render|verify|convert [-j threads] [-o output] [-x] [-q] <files...|->");
+        return USAGE;
+    }
+
+    // Turn the command line file arguments into a list of paths, expanding
+    // glob patterns and reading paths from standard input for '-'.
+    static List<Path> expand(List<String> patterns) throws IOException {
+        ArrayList<Path> files = new ArrayList<Path>();
+        for (String pattern : patterns) {
+            if (pattern.equals("-")) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+                for (String s = in.readLine(); s != null; s = in.readLine())
+                    if (!s.trim().isEmpty())
+                        files.add(Paths.get(s.trim()));
+            } else if (isGlob(pattern)) {
+                files.addAll(glob(pattern));
+            } else {
+                files.add(Paths.get(pattern));
+            }
+        }
+        return files;
+    }
+
+    private static boolean isGlob(String s) {
+        for (char c : s.toCharArray())
+            if (c == '*' || c == '?' || c == '[' || c == '{')
+                return true;
+        return false;
+    }
+
+    // Find the files matching a glob pattern, searching from the longest
+    // directory prefix without any wildcards.
+    static List<Path> glob(String pattern) throws IOException {
+        Path full = Paths.get(pattern);
+        Path base = full.isAbsolute() ? full.getRoot() : Paths.get("");
+        for (Path part : full) {
+            if (isGlob(part.toString()))
+                break;
+            base = base.resolve(part);
+        }
+        if (!Files.isDirectory(base))
+            return Collections.emptyList();
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        ArrayList<Path> matches = new ArrayList<Path>();
+        Path start = base.toString().isEmpty() ? Paths.get(".") : base;
+        Path prefix = base;
+        try (Stream<Path> walk = Files.walk(start)) {
+            walk.filter(Files::isRegularFile)
+                    .map(p -> prefix.resolve(start.relativize(p)))
+                    .filter(matcher::matches)
+                    .sorted()
+                    .forEach(matches::add);
+        }
+        return matches;
+    }
+
+    // Run a task over every file on the thread pool, printing how each one
+    // went and then the totals.
+    private int runAll(List<Path> files, Task task) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+        ExecutorCompletionService<Result> done = new ExecutorCompletionService<Result>(executor);
+        long started = System.nanoTime();
+        for (Path file : files)
+            done.submit(() -> runOne(file, task));
+
+        int failures = 0;
+        long bytes = 0;
+        long commands = 0;
+        boolean interrupted = false;
+        try {
+            for (int k = 0; k < files.size(); k++) {
+                Result r;
+                try {
+                    r = done.take().get();
+                } catch (ExecutionException e) {
+                    // runOne catches everything, so this shouldn't happen,
+                    // but it mustn't lose the results of the other files.
+                    failures++;
+                    err.println("Task failed: " + e.getCause());
+                    continue;
+                }
+                if (r.error != null) {
+                    failures++;
+                    err.println(r.file + ": " + r.error);
+                    continue;
+                }
+                bytes += r.bytes;
+                commands += r.commands;
+                if (!quiet)
+                    out.printf("%s: %d commands, %d bytes in %.2f ms%n", r.file, r.commands, r.bytes, r.nanos / 1e6);
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+            err.println("Interrupted, not waiting for the remaining files");
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+        out.printf("%s: %d files (%d failed) in %.3f s, %.0f commands/s, %.2f MB/s on %d threads%n",
+                command, files.size(), failures, seconds, commands / seconds, bytes / seconds / 1e6, threads);
+        return failures == 0 && !interrupted ? OK : FAILED;
+    }
+
+    private static Result runOne(Path file, Task task) {
+        long start = System.nanoTime();
+        try {
+            long bytes = Files.size(file);
+            long commands = task.run(file);
+            return new Result(file, null, System.nanoTime() - start, bytes, commands);
+        } catch (NoSuchFileException e) {
+            return new Result(file, "File not found", System.nanoTime() - start, 0, 0);
+        } catch (IOException | BadCommand | RuntimeException | Error e) {
+            // Errors are caught too, so that one file running out of memory or
+            // failing an assertion doesn't stop the rest being reported.
+            return new Result(file, e.getMessage() == null ? e.toString() : e.getMessage(), System.nanoTime() - start, 0, 0);
+        }
+    }
+
+    // Where to put a file derived from the input, in the -o directory if one
+    // was given and otherwise next to the input.
+    private Path outputFor(Path file, String suffix) {
+        Path dir = output != null ? output : file.toAbsolutePath().getParent();
+        return dir.resolve(file.getFileName() + suffix);
+    }
+
+    private static Drawing readDrawing(Path file) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            return new Drawing(in);
+        }
+    }
+
+    private static Image readImage(Path file) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            return new Image(in);
+        }
+    }
+
+    private static void writeDrawing(Drawing d, Path file) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            d.write(out);
+        }
+    }
+
+    private long compress(Path file) throws IOException {
+        Drawing d = readImage(file).compress();
+        writeDrawing(d, outputFor(file, ".drawing"));
+        return d.getCommandsLength();
+    }
+
+    private long render(Path file) throws IOException, BadCommand {
+        Drawing d = readDrawing(file);
+        Path png = outputFor(file, "");
+        d.draw().toPNG(png.toString());
+        return d.getCommandsLength();
+    }
+
+    private long verify(Path file) throws IOException, BadCommand {
+        Image original = readImage(file);
+        Drawing d = original.compress();
+        if (!d.draw().samePixels(original))
+            throw new IOException("Drawing does not reproduce the image");
+        return d.getCommandsLength();
+    }
+
+    private long pack(DrawingArchive.Writer archive, Path file) throws IOException {
+        Drawing d = readDrawing(file);
+        synchronized (archive) {
+            archive.add(file.getFileName().toString(), d);
+        }
+        return d.getCommandsLength();
+    }
+
+    // Write every drawing in the given archives out as a text drawing file.
+    private int extract(List<Path> archives) {
+        long started = System.nanoTime();
+        int failures = 0;
+        long count = 0;
+        long commands = 0;
+        for (Path file : archives) {
+            try (DrawingArchive archive = DrawingArchive.open(file)) {
+                Path dir = (output != null ? output : file.toAbsolutePath().getParent()).toAbsolutePath().normalize();
+                Files.createDirectories(dir);
+                for (String name : archive.names()) {
+                    // Names come from the archive, so don't let one write
+                    // anywhere outside the output directory.
+                    Path target = dir.resolve(name).normalize();
+                    if (!target.startsWith(dir) || target.equals(dir))
+                        throw new IOException("Drawing name outside the output directory: " + name);
+                    Drawing d = archive.get(name);
+                    writeDrawing(d, target);
+                    count++;
+                    commands += d.getCommandsLength();
+                }
+            } catch (IOException e) {
+                failures++;
+                err.println(file + ": " + e.getMessage());
+            }
+        }
+        double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+        out.printf("convert: extracted %d drawings from %d archives (%d failed) in %.3f s, %.0f commands/s%n",
+                count, archives.size(), failures, seconds, commands / seconds);
+        return failures == 0 ? OK : FAILED;
+    }
+}
@@ -1,12 +1,15 @@
 import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.stream.*;
 import java.awt.*;
 import java.awt.image.*;
 import javax.imageio.*;
 
 // This class represents a simple rectangular image, where each pixel can be
 // one of 16 colours.
-public class Image {
+public class Image implements Canvas {
 
     // This is the standard 4-bit EGA colour scheme, where the numbers represent
     // 24-bit RGB colours.
@@ -17,58 +20,70 @@ public class Image {
                     0xFF5555, 0xFF55FF, 0xFFFF55, 0xFFFFFF};
     // Store a 2 dimensional image with "colours" as numbers between 0 and 15
     private int pixels[][];
+    // Cached transpose of pixels, see columns()
+    private int[][] columns;
+
+    // Side of the square tiles used when transposing, and the number of pixels
+    // above which the transpose is split between threads.
+    static final int TILE = 64;
+    static final int PARALLEL_TRANSPOSE = 1 << 20;
 
     // Read in an image from a file. Each line of the file must be the same
     // length, and only contain single digit hex numbers 0-9 and a-f.
-    public Image(String filename) {
-
-        // Read the whole file into lines
-        ArrayList<String> lines = new ArrayList<String>();
-        try {
-            BufferedReader in = new BufferedReader(new FileReader(filename));
-            for (String s = in.readLine(); s != null; s = in.readLine())
-                lines.add(s);
-        } catch (FileNotFoundException e) {
-            System.out.println("File not found: " + filename);
-            System.exit(1);
-        } catch (IOException e) {
-            System.exit(2);
-        }
-
-        if (lines.size() == 0) {
-            System.out.println("Empty file: " + filename);
-            System.exit(1);
+    public Image(String filename) throws IOException {
+        try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+            read(in);
         }
+    }
 
-        // Initialise the array based on the number of lines and the length of the
-        // first one.
-        int length = lines.get(0).length();
-        pixels = new int[lines.size()][length];
+    // Read in an image in the same format as above from an open reader. Each
+    // line is converted to pixels as soon as it is read.
+    public Image(BufferedReader in) throws IOException {
+        read(in);
+    }
 
-        for (int i = 0; i < lines.size(); i++) {
+    private void read(BufferedReader in) throws IOException {
+        ArrayList<int[]> rows = new ArrayList<int[]>();
+        int length = -1;
+        for (String s = in.readLine(); s != null; s = in.readLine()) {
             // Check that all of the lines have the same length as the first one.
-            if (length != lines.get(i).length()) {
-                System.out.println("Inconsistent line lengths: " + length + " and " + lines.get(i).length() + " on lines 1 and " + (i + 1));
-                System.exit(1);
-            }
+            if (length == -1)
+                length = s.length();
+            else if (length != s.length())
+                throw new BadFormat("Inconsistent line lengths: " + length + " and " + s.length() + " on lines 1 and " + (rows.size() + 1));
 
-            // Copy each line into the array
+            // Copy each line into a row
+            int[] row = new int[length];
             for (int j = 0; j < length; j++) {
-                pixels[i][j] = Character.getNumericValue(lines.get(i).charAt(j));
-                if (pixels[i][j] < 0 || pixels[i][j] > 15) {
-                    System.out.println("Invalid contents: " + lines.get(i).charAt(j) + " on line " + (i + 1));
-                    System.exit(1);
-                }
+                row[j] = Character.getNumericValue(s.charAt(j));
+                if (row[j] < 0 || row[j] > 15)
+                    throw new BadFormat("Invalid contents: " + s.charAt(j) + " on line " + (rows.size() + 1));
             }
+            rows.add(row);
         }
+
+        if (rows.size() == 0)
+            throw new BadFormat("Empty file");
+        pixels = rows.toArray(new int[rows.size()][]);
     }
 
     // Create a solid image with given dimensions and colour
     public Image(int height, int width, int colour) {
-        pixels = new int[height][width];
-        for (int i = 0; i < height; i++)
-            for (int j = 0; j < width; j++)
-                pixels[i][j] = colour;
+        this(new int[height][width], colour);
+    }
+
+    // Create a solid image on top of an existing pixel buffer, overwriting
+    // whatever was in it. Used to recycle buffers between renders.
+    Image(int[][] buffer, int colour) {
+        pixels = buffer;
+        for (int[] row : pixels)
+            Arrays.fill(row, colour);
+    }
+
+    // Hand out the backing pixel buffer so it can be recycled once this image
+    // is no longer needed.
+    int[][] buffer() {
+        return pixels;
     }
 
     //a simple method to turn an int value from 0 to 15 to a hex
@@ -91,7 +106,7 @@ public class Image {
         }
     }
 
-    public static void main(String[] args) throws FileNotFoundException {
+    public static void main(String[] args) throws IOException {
         /* A test to read in an image, compress it into a drawing file, print it out, and turn it into a png.
         Image i = new Image(args[0]);
         Drawing d = i.compress();
@@ -106,34 +121,25 @@ public class Image {
     /**
      * Creates new drawings for the test files and pixel arts.
      */
-    public static void saveFiles() throws FileNotFoundException {
-        for (int i = 1; i <= 5; i++) {
-            Image ti = new Image("./test-files/test-image" + i);
-            //Compress the test image to drawing commands and add it to a file
-            try (PrintWriter out = new PrintWriter("./test-files/test-drawing" + i)) {
-                out.println(ti.compress().toString());}
-            //Create a png image of the compressed image, as well as the original uncompressed one (for comparision)
-           /*     ti.compress().draw().toPNG("test-image" + i);
-            } catch (BadCommand e) {
-                throw new FileNotFoundException();
-            }
-            ti.toPNG("test-image" + i + "_original");*/
+    public static void saveFiles() throws IOException {
+        LinkedHashMap<Path, Path> jobs = new LinkedHashMap<Path, Path>();
+        //Compress the test images to drawing commands and add them to files
+        for (int i = 1; i <= 5; i++)
+            jobs.put(Paths.get("./test-files/test-image" + i), Paths.get("./test-files/test-drawing" + i));
+        //Compress the pixel art to drawing commands and add them to files
+        for (int i = 1; i <= 6; i++)
+            jobs.put(Paths.get("./pixel-art/pixel-art" + i), Paths.get("./pixel-art/pixel-drawing" + i));
 
+        //Read, compress and write the files with the stages overlapping
+        CompressPipeline.Report report;
+        try {
+            report = new CompressPipeline().run(jobs);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while saving files");
         }
-        for (int i = 1; i <= 6; i++) {
-            //Compress the pixel art to drawing commands and add it to a file
-            Image pa = new Image("./pixel-art/pixel-art" + i);
-            //Drawing pad = pa.compress();
-            try (PrintWriter out = new PrintWriter("./pixel-art/pixel-drawing" + i)) {
-                out.println(pa.compress().toString()); }
-           //Create a png image of the compressed image, as well as the original uncompressed one (for comparision)
-           /*pad.draw().toPNG("pixel-image" + i);
-            } catch (BadCommand e) {
-                throw new FileNotFoundException();
-            }
-            pa.toPNG("pixel-image" + i + "_original");*/
-        }
-
+        System.out.print(report);
+        if (!report.errors().isEmpty())
+            throw new IOException(report.errors().size() + " files could not be saved");
     }
 
     // Get back the original text-based representation
@@ -159,344 +165,120 @@ public class Image {
     // this as a competition and give all 4 to the best 20% of the class, 3 to
     // the next best 20%, and so on.
     public Drawing compress() {
-        //initialises the variables used in the code
-        int height = pixels.length;
-        int width = pixels[0].length;
-        int background = pixels[0][0];
+        return compress(new RunScanner(pixels), new RunScanner(columns()));
+    }
+
+    // Compress an image given scanners over its rows and its columns, trying
+    // both directions and keeping the shorter drawing.
+    static Drawing compress(LineScanner rows, LineScanner columns) {
+        int height = rows.count();
+        int width = rows.length();
+        int background = rows.colour(0, 0);
+        //horizontal RLE compression runs along the rows, moving down a row at a time
         Drawing drawingHor = new Drawing(height, width, background);
+        compressLines(rows, background, drawingHor, Direction.RIGHT, Direction.LEFT, Direction.DOWN);
+        //vertical RLE compression runs along the columns, moving right a column at a time
         Drawing drawingVer = new Drawing(height, width, background);
-        int i = 0;
-        int j = 0;
-        int runX = 0;
-        int runY = 0;
-        int[] current = {i, j, pixels[i][j]};
-        int[] previous = {i, j, pixels[i][j]};
-        boolean lineChanged = false;
-        boolean firstChar = true;
-        //horizontal RLE compression
-        while (i < height) {
-            //performs RLE when pointer is at the start of the line
-            if (j == 0) {
-                current[0] = i;
-                current[1] = 0;
-                current[2] = pixels[i][0];
-                previous[0] = i;
-                previous[1] = 0;
-                previous[2] = pixels[i][0];
-                while (j < width - 1) {
-                    current[0] = i;
-                    current[1] = j + 1;
-                    current[2] = pixels[i][j + 1];
-                    if (current[2] == previous[2]) {
-                        runX++;
-                        j++;
-                    } else {
-                        if (runX > 0) {
-                            if (firstChar) {
-                                if (runY > 0) {
-                                    DrawingCommand command = new DrawingCommand("down " + runY);
-                                    drawingHor.addCommand(command);
-                                    runY = 0;
-                                }
-                                if (pixels[i][0] != background) {
-                                    DrawingCommand command = new DrawingCommand("left 1");
-                                    drawingHor.addCommand(command);
-                                    j--;
-                                }
-                                firstChar = false;
-                            }
-                            if (previous[2] == background) {
-                                DrawingCommand command = new DrawingCommand("right " + runX);
-                                drawingHor.addCommand(command);
-                            } else {
-                                DrawingCommand command = new DrawingCommand("right " + runX + " " + toHex(previous[2]));
-                                drawingHor.addCommand(command);
-                            }
-                            lineChanged = true;
-                            runX = 0;
-                        }
-                    }
-                    previous[0] = current[0];
-                    previous[1] = current[1];
-                    previous[2] = current[2];
-                }
+        compressLines(columns, background, drawingVer, Direction.DOWN, Direction.UP, Direction.RIGHT);
+        //Compare the drawings and return the one with the least commands
+        if (drawingHor.getCommandsLength() < drawingVer.getCommandsLength()) {
+            return drawingHor;
+        } else {
+            return drawingVer;
+        }
+    }
 
-                //performs RLE when pointer is at the end of the line
-            } else if (j == width - 1) {
-                current[0] = i;
-                current[1] = width - 1;
-                current[2] = pixels[i][width - 1];
-                previous[0] = i;
-                previous[1] = width - 1;
-                previous[2] = pixels[i][width - 1];
-                while (j > 0) {
-                    current[0] = i;
-                    current[1] = j - 1;
-                    current[2] = pixels[i][j - 1];
-                    if (current[2] == previous[2]) {
-                        runX++;
-                        j--;
-                    } else if (runX > 0) {
-                        if (firstChar) {
-                            if (runY > 0) {
-                                DrawingCommand command = new DrawingCommand("down " + runY);
-                                drawingHor.addCommand(command);
-                                runY = 0;
-                            }
-                            if (pixels[i][width - 1] != background) {
-                                DrawingCommand command = new DrawingCommand("right 1");
-                                drawingHor.addCommand(command);
-                                j++;
-                            }
-                            firstChar = false;
-                        }
-                        if (previous[2] == background) {
-                            DrawingCommand command = new DrawingCommand("left " + runX);
-                            drawingHor.addCommand(command);
-                        } else {
-                            DrawingCommand command = new DrawingCommand("left " + runX + " " + toHex(previous[2]));
-                            drawingHor.addCommand(command);
-                        }
-                        runX = 0;
-                        lineChanged = true;
-                    }
-                    previous[0] = current[0];
-                    previous[1] = current[1];
-                    previous[2] = current[2];
-                }
-            }
-            //add the commands that have not been added yet
-            if (j == width - 1 && runX > 0) {
-                if (current[2] == background) {
-                    if (lineChanged) {
-                        DrawingCommand command = new DrawingCommand("right " + runX);
-                        drawingHor.addCommand(command);
-                    } else {
-                        j = 0;
-                    }
-                } else {
-                    if (firstChar) {
-                        if (runY > 0) {
-                            DrawingCommand command = new DrawingCommand("down " + runY);
-                            drawingHor.addCommand(command);
-                            runY = 0;
-                        }
-                        if (pixels[i][0] != background) {
-                            DrawingCommand command = new DrawingCommand("left 1");
-                            drawingHor.addCommand(command);
-                            runX++;
-                        }
-                    }
-                    DrawingCommand command = new DrawingCommand("right " + runX + " " + toHex(current[2]));
-                    drawingHor.addCommand(command);
-                }
-                runX = 0;
-            } else if (j == 0 && runX > 0) {
-                if (current[2] == background) {
-                    if (lineChanged) {
-                        DrawingCommand command = new DrawingCommand("left " + runX);
-                        drawingHor.addCommand(command);
-                    } else {
-                        j = width - 1;
-                    }
-                } else {
-                    if (firstChar) {
-                        if (runY > 0) {
-                            DrawingCommand command = new DrawingCommand("down " + runY);
-                            drawingHor.addCommand(command);
-                            runY = 0;
-                        }
-                        if (pixels[i][width - 1] != background) {
-                            DrawingCommand command = new DrawingCommand("right 1");
-                            drawingHor.addCommand(command);
-                            runX++;
-                        }
-                    }
-                    DrawingCommand command = new DrawingCommand("left " + runX + " " + toHex(current[2]));
-                    drawingHor.addCommand(command);
+    // The image with each column copied into a row, so that column-oriented
+    // passes can read memory sequentially. Built on demand, and dropped
+    // whenever a pixel is painted.
+    int[][] columns() {
+        if (columns == null)
+            columns = transpose(pixels);
+        return columns;
+    }
+
+    // Copy the image so that each column becomes a row. The copy is done in
+    // square tiles so that both the rows being read and the rows being written
+    // stay in cache, and large images split the bands of tiles between threads.
+    static int[][] transpose(int[][] rows) {
+        int height = rows.length;
+        int width = rows[0].length;
+        int[][] columns = new int[width][height];
+        int bands = (width + TILE - 1) / TILE;
+        IntStream range = IntStream.range(0, bands);
+        if ((long) height * width >= PARALLEL_TRANSPOSE)
+            range = range.parallel();
+        range.forEach(band -> {
+            int jStart = band * TILE;
+            int jEnd = Math.min(jStart + TILE, width);
+            for (int iStart = 0; iStart < height; iStart += TILE) {
+                int iEnd = Math.min(iStart + TILE, height);
+                for (int i = iStart; i < iEnd; i++) {
+                    int[] row = rows[i];
+                    for (int j = jStart; j < jEnd; j++)
+                        columns[j][i] = row[j];
                 }
-                runX = 0;
             }
-            runY++;
-            i++;
-            lineChanged = false;
-            firstChar = true;
-        }
+        });
+        return columns;
+    }
 
-        //Resets all the variables.
-        i = 0;
-        j = 0;
-        runX = 0;
-        runY = 0;
-        current[0] = i;
-        current[1] = j;
-        current[2] = pixels[i][j];
-        previous[0] = i;
-        previous[1] = j;
-        previous[2] = pixels[i][j];
-        lineChanged = false;
-        firstChar = true;
-        //Vertical RLE compression
-        while (j < width) {
-            //performs RLE when pointer is at the start of the line
-            if (i == 0) {
-                current[0] = 0;
-                current[1] = j;
-                current[2] = pixels[0][j];
-                previous[0] = 0;
-                previous[1] = j;
-                previous[2] = pixels[0][j];
-                while (i < height - 1) {
-                    current[0] = i + 1;
-                    current[1] = j;
-                    current[2] = pixels[i + 1][j];
-                    if (current[2] == previous[2]) {
-                        runY++;
-                        i++;
-                    } else {
-                        if (runY > 0) {
-                            if (firstChar) {
-                                if (runX > 0) {
-                                    DrawingCommand command = new DrawingCommand("right " + runX);
-                                    drawingVer.addCommand(command);
-                                    runX = 0;
-                                }
-                                if (pixels[0][j] != background) {
-                                    DrawingCommand command = new DrawingCommand("up 1");
-                                    drawingVer.addCommand(command);
-                                    i--;
-                                }
-                                firstChar = false;
-                            }
-                            if (previous[2] == background) {
-                                DrawingCommand command = new DrawingCommand("down " + runY);
-                                drawingVer.addCommand(command);
-                            } else {
-                                DrawingCommand command = new DrawingCommand("down " + runY + " " + toHex(previous[2]));
-                                drawingVer.addCommand(command);
-                            }
-                            lineChanged = true;
-                            runY = 0;
-                        }
-                    }
-                    previous[0] = current[0];
-                    previous[1] = current[1];
-                    previous[2] = current[2];
-                }
+    // Serpentine RLE over the lines of an image, adding the commands to the
+    // drawing. Lines that are all background are skipped. On every other line
+    // the pointer steps to just outside its first or last non-background
+    // pixel, whichever is nearer, and then runs along the line one run at a
+    // time, painting each run that isn't background and moving over the rest.
+    // "advance" moves the pointer from one line to the next.
+    static void compressLines(LineScanner lines, int background, Drawing drawing,
+                              Direction forward, Direction backward, Direction advance) {
+        int count = lines.count();
+        int length = lines.length();
+        //where the pointer is, as a line and a position along it
+        int line = 0;
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            //find the first and last pixels on the line that need painting
+            int first = lines.colour(i, 0) != background ? 0 : lines.forwardEnd(i, 0);
+            if (first == length)
+                continue;
+            int last = lines.colour(i, length - 1) != background ? length - 1 : lines.backwardEnd(i, length - 1);
 
-                //performs RLE when pointer is at the end of the line
-            } else if (i == height - 1) {
-                current[0] = height - 1;
-                current[1] = j;
-                current[2] = pixels[height - 1][j];
-                previous[0] = height - 1;
-                previous[1] = j;
-                previous[2] = pixels[height - 1][j];
-                while (i > 0) {
-                    current[0] = i - 1;
-                    current[1] = j;
-                    current[2] = pixels[i - 1][j];
-                    if (current[2] == previous[2]) {
-                        runY++;
-                        i--;
-                    } else {
-                        if (runY > 0) {
-                            if (firstChar) {
-                                if (runX > 0) {
-                                    DrawingCommand command = new DrawingCommand("right " + runX);
-                                    drawingVer.addCommand(command);
-                                    runX = 0;
-                                }
-                                if (pixels[height - 1][j] != background) {
-                                    DrawingCommand command = new DrawingCommand("down 1");
-                                    drawingVer.addCommand(command);
-                                    i++;
-                                }
-                                firstChar = false;
-                            }
-                            if (previous[2] == background) {
-                                DrawingCommand command = new DrawingCommand("up " + runY);
-                                drawingVer.addCommand(command);
-                            } else {
-                                DrawingCommand command = new DrawingCommand("up " + runY + " " + toHex(previous[2]));
-                                drawingVer.addCommand(command);
-                            }
-                            runY = 0;
-                            lineChanged = true;
-                        }
-                    }
-                    previous[0] = current[0];
-                    previous[1] = current[1];
-                    previous[2] = current[2];
-                }
+            if (i > line) {
+                drawing.addCommand(new DrawingCommand(advance, i - line, -1));
+                line = i;
             }
-            //add the commands that have not been added yet
-            if (i == height - 1 && runY > 0) {
-                if (current[2] == background) {
-                    if (lineChanged) {
-                        DrawingCommand command = new DrawingCommand("down " + runY);
-                        drawingVer.addCommand(command);
-                    } else {
-                        i = 0;
-                    }
-                } else {
-                    if (firstChar) {
-                        if (runX > 0) {
-                            DrawingCommand command = new DrawingCommand("right " + runX);
-                            drawingVer.addCommand(command);
-                            runX = 0;
-                        }
-                        if (pixels[0][j] != background) {
-                            DrawingCommand command = new DrawingCommand("up 1");
-                            drawingVer.addCommand(command);
-                            runY++;
-                        }
-                    }
-                    DrawingCommand command = new DrawingCommand("down " + runY + " " + toHex(current[2]));
-                    drawingVer.addCommand(command);
+            if (Math.abs(position - (first - 1)) <= Math.abs(position - (last + 1))) {
+                move(drawing, position, first - 1, forward, backward);
+                for (int j = first; j <= last; ) {
+                    int end = lines.forwardEnd(i, j);
+                    int colour = lines.colour(i, j);
+                    drawing.addCommand(new DrawingCommand(forward, end - j, colour == background ? -1 : colour));
+                    j = end;
                 }
-                runY = 0;
-            } else if (i == 0 && runY > 0) {
-                if (current[2] == background) {
-                    if (lineChanged) {
-                        DrawingCommand command = new DrawingCommand("up " + runY);
-                        drawingVer.addCommand(command);
-                    } else {
-                        i = height - 1;
-                    }
-                } else {
-                    if (firstChar) {
-                        if (runX > 0) {
-                            DrawingCommand command = new DrawingCommand("right " + runX);
-                            drawingVer.addCommand(command);
-                            runX = 0;
-                        }
-                        if (pixels[height - 1][j] != background) {
-                            DrawingCommand command = new DrawingCommand("down 1");
-                            drawingVer.addCommand(command);
-                            runY++;
-                        }
-                    }
-                    DrawingCommand command = new DrawingCommand("up " + runY + " " + toHex(current[2]));
-                    drawingVer.addCommand(command);
+                position = last;
+            } else {
+                move(drawing, position, last + 1, forward, backward);
+                for (int j = last; j >= first; ) {
+                    int start = lines.backwardEnd(i, j);
+                    int colour = lines.colour(i, j);
+                    drawing.addCommand(new DrawingCommand(backward, j - start, colour == background ? -1 : colour));
+                    j = start;
                 }
-                runY = 0;
+                position = first;
             }
-            runX++;
-            j++;
-            lineChanged = false;
-            firstChar = true;
-        }
-        //Compare the drawings and return the one with the least commands
-        if (drawingHor.getCommandsLength() < drawingVer.getCommandsLength()) {
-            return drawingHor;
-        } else {
-            return drawingVer;
         }
     }
 
+    // Move the pointer along a line without painting.
+    private static void move(Drawing drawing, int from, int to, Direction forward, Direction backward) {
+        if (to > from)
+            drawing.addCommand(new DrawingCommand(forward, to - from, -1));
+        else if (to < from)
+            drawing.addCommand(new DrawingCommand(backward, from - to, -1));
+    }
+
     // Render the image into a PNG with the given filename.
-    public void toPNG(String filename) {
+    public void toPNG(String filename) throws IOException {
 
         BufferedImage im = new BufferedImage(pixels[0].length, pixels.length, BufferedImage.TYPE_INT_RGB);
 
@@ -506,20 +288,38 @@ public class Image {
             }
 
         File f = new File(filename + ".png");
-        try {
-            ImageIO.write(im, "PNG", f);
-        } catch (IOException e) {
-            System.out.println("Unable to write image");
-            System.exit(1);
-        }
+        if (!ImageIO.write(im, "PNG", f))
+            throw new IOException("Unable to write image: " + f);
+    }
+
+    //Checks whether two images have exactly the same pixels.
+    public boolean samePixels(Image other) {
+        return Arrays.deepEquals(pixels, other.pixels);
+    }
+
+    public int getHeight() {
+        return pixels.length;
+    }
+
+    public int getWidth() {
+        return pixels[0].length;
     }
 
     //Changes the colour of a single pixel.
     public void paint(int y, int x, int colour) throws BadCommand {
         try {
             pixels[y][x] = colour;
+            columns = null;
         } catch (ArrayIndexOutOfBoundsException e) {
             throw new BadCommand("Tried to paint of out bounds.");
         }
     }
+
+    //Changes the colour of a horizontal span of pixels.
+    public void paintRow(int y, int from, int to, int colour) throws BadCommand {
+        if (y < 0 || y >= pixels.length || from < 0 || to >= pixels[y].length)
+            throw new BadCommand("Tried to paint of out bounds.");
+        Arrays.fill(pixels[y], from, to + 1, colour);
+        columns = null;
+    }
 }
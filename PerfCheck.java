@@ -0,0 +1,407 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+// A repeatable performance check for compress() and draw(), to catch
+// regressions in local runs.
+//
+// java PerfCheck [--record] [--strict] [--baseline file]
+//
+// Seeded generators make noise, stripes, blobs and pixel art images at several
+// sizes. For every case the drawing has to reproduce the image exactly,
+// through both Image and RunImage. The number of commands, the bytes allocated
+// per pixel by compress() and draw() and their relative throughput are then
+// compared with the baseline file (perf-baseline.properties by default):
+// commands may not go up, allocation may not grow by more than ALLOC_SLACK and
+// throughput may not fall below THROUGHPUT_FLOOR of the recorded value.
+//
+// Samples are timed in CPU time of the measuring thread, so that other
+// processes taking turns on the CPU don't count against them. Throughput in
+// pixels per second still depends on the machine, so every sample also times a
+// fixed calibration workload (copying and scanning a noise image), and
+// throughput is recorded as the speed of the fastest sample as a multiple of
+// the fastest calibration run. That way a baseline recorded on one machine
+// still means something on another.
+//
+// The course images test-image1 and test-image2 are also held to 20 and 35
+// commands when they are present under ./test-files, and reported as skipped
+// when they are not.
+//
+// --record runs the same cases and writes their numbers out as the new
+// baseline instead of checking them. --strict counts skipped checks as
+// failures. The exit code is 0 if every check passed and 1 otherwise.
+public class PerfCheck {
+
+    static final double ALLOC_SLACK = Double.parseDouble(System.getProperty("perf.allocSlack", "1.25"));
+    static final double THROUGHPUT_FLOOR = Double.parseDouble(System.getProperty("perf.throughputFloor", "0.5"));
+    static final int WARMUP = Integer.getInteger("perf.warmup", 5);
+    static final int RUNS = Integer.getInteger("perf.runs", 7);
+    static final int RETRIES = Integer.getInteger("perf.retries", 2);
+    // Roughly how many pixels each timing sample should cover
+    static final long SAMPLE_PIXELS = 1 << 18;
+
+    static final int[][] SIZES = {{32, 32}, {128, 128}, {512, 512}, {256, 2048}};
+    static final String[] KINDS = {"noise", "stripes", "blobs", "pixel-art"};
+
+    // The numbers measured for one case.
+    static class Measurement {
+        long commands;
+        double compressBytesPerPixel;
+        double drawBytesPerPixel;
+        double compressPixelsPerSecond;
+        double drawPixelsPerSecond;
+        // Throughput as a multiple of the calibration speed
+        double compressRelative;
+        double drawRelative;
+    }
+
+    // The calibration workload, timed alongside every sample
+    static final int[][] CALIBRATION = generate("noise", 512, 512, new Random(1));
+    // Keeps the calibration from being optimised away
+    static volatile long sink;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private int failures = 0;
+    private int skipped = 0;
+
+    public static void main(String[] args) throws IOException {
+        boolean record = false;
+        boolean strict = false;
+        String baselineFile = "perf-baseline.properties";
+        for (int k = 0; k < args.length; k++) {
+            if (args[k].equals("--record"))
+                record = true;
+            else if (args[k].equals("--strict"))
+                strict = true;
+            else if (args[k].equals("--baseline") && k + 1 < args.length)
+                baselineFile = args[++k];
+            else {
+                System.err.println("usage: java PerfCheck [--record] [--strict] [--baseline file]");
+                System.exit(2);
+            }
+        }
+        System.exit(new PerfCheck().run(record, strict, new File(baselineFile)));
+    }
+
+    int run(boolean record, boolean strict, File baselineFile) throws IOException {
+        if (!THREADS.isThreadAllocatedMemorySupported() || !THREADS.isCurrentThreadCpuTimeSupported()) {
+            System.err.println("This JVM can't measure allocated memory and CPU time per thread");
+            return 1;
+        }
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+        THREADS.setThreadCpuTimeEnabled(true);
+
+        Properties baseline = new Properties();
+        if (!record) {
+            if (baselineFile.exists()) {
+                try (Reader in = new FileReader(baselineFile)) {
+                    baseline.load(in);
+                }
+            } else {
+                System.out.println("No baseline in " + baselineFile + ", only checking correctness");
+            }
+        }
+        Properties measured = new Properties();
+
+        System.out.printf("%-22s %9s %12s %12s %14s %14s %9s %9s%n", "case", "commands",
+                "compress B/px", "draw B/px", "compress px/s", "draw px/s", "compress", "draw");
+        for (String kind : KINDS) {
+            for (int[] size : SIZES) {
+                String name = kind + "-" + size[0] + "x" + size[1];
+                int[][] pixels = generate(kind, size[0], size[1], new Random(name.hashCode()));
+                if (!check(name, pixels))
+                    continue;
+                Measurement m = measure(name, pixels);
+                if (m == null)
+                    continue;
+                // Timings are noisy on a busy machine, so give a slow case
+                // another couple of tries and keep its best throughput.
+                for (int retry = 0; retry < RETRIES && !record && belowFloor(baseline, name, m); retry++) {
+                    Measurement again = measure(name, pixels);
+                    if (again == null)
+                        break;
+                    m.compressPixelsPerSecond = Math.max(m.compressPixelsPerSecond, again.compressPixelsPerSecond);
+                    m.drawPixelsPerSecond = Math.max(m.drawPixelsPerSecond, again.drawPixelsPerSecond);
+                    m.compressRelative = Math.max(m.compressRelative, again.compressRelative);
+                    m.drawRelative = Math.max(m.drawRelative, again.drawRelative);
+                }
+                System.out.printf("%-22s %9d %12.1f %12.1f %14.0f %14.0f %9.3f %9.3f%n", name, m.commands,
+                        m.compressBytesPerPixel, m.drawBytesPerPixel, m.compressPixelsPerSecond, m.drawPixelsPerSecond,
+                        m.compressRelative, m.drawRelative);
+                store(measured, name, m);
+                if (!record)
+                    compare(baseline, name, m);
+            }
+        }
+        checkCourseImage("./test-files/test-image1", 20);
+        checkCourseImage("./test-files/test-image2", 35);
+
+        if (record) {
+            // Written by hand rather than with Properties.store, so that the
+            // keys come out sorted and a new baseline diffs cleanly.
+            try (PrintWriter out = new PrintWriter(new FileWriter(baselineFile))) {
+                out.println("# PerfCheck baseline, rerun with --record to update");
+                for (String key : new TreeSet<String>(measured.stringPropertyNames()))
+                    out.println(key + "=" + measured.getProperty(key));
+            }
+            System.out.println("Recorded baseline in " + baselineFile);
+        }
+        if (failures > 0)
+            System.out.println(failures + " checks failed" + (skipped > 0 ? ", " + skipped + " skipped" : ""));
+        else if (skipped > 0)
+            System.out.println("All checks passed, " + skipped + " skipped" + (strict ? " (failing under --strict)" : ""));
+        else
+            System.out.println("All checks passed");
+        return failures > 0 || strict && skipped > 0 ? 1 : 0;
+    }
+
+    private void fail(String message) {
+        failures++;
+        System.out.println("FAIL " + message);
+    }
+
+    // Build an image from the given pixels. The copy keeps each measurement
+    // starting from a fresh image without any cached state.
+    private static Image imageOf(int[][] pixels) {
+        Image image = new Image(pixels.length, pixels[0].length, 0);
+        int[][] buffer = image.buffer();
+        for (int i = 0; i < pixels.length; i++)
+            System.arraycopy(pixels[i], 0, buffer[i], 0, pixels[i].length);
+        return image;
+    }
+
+    // Check that the case round-trips through both Image and RunImage.
+    // Returns false if the drawing doesn't reproduce the image, in which case
+    // there is no point timing it.
+    private boolean check(String name, int[][] pixels) {
+        Image original = imageOf(pixels);
+        Drawing drawing = original.compress();
+        try {
+            if (!drawing.draw().samePixels(original)) {
+                fail(name + ": drawing does not reproduce the image");
+                return false;
+            }
+            RunImage runs = new RunImage(original);
+            if (!runs.compress().toString().equals(drawing.toString()))
+                fail(name + ": RunImage compresses differently to Image");
+            if (!drawing.drawRuns().toImage().samePixels(original))
+                fail(name + ": drawing into a RunImage does not reproduce the image");
+        } catch (BadCommand e) {
+            fail(name + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    // Time the case and count its allocations. Returns null if drawing it
+    // fails.
+    private Measurement measure(String name, int[][] pixels) {
+        long area = (long) pixels.length * pixels[0].length;
+        Measurement m = new Measurement();
+        m.commands = imageOf(pixels).compress().getCommandsLength();
+        // Repeat small cases within each sample so that the timer has
+        // something to measure.
+        int reps = (int) Math.max(1, SAMPLE_PIXELS / area);
+        double[] compressTimes = new double[RUNS];
+        double[] drawTimes = new double[RUNS];
+        double[] calibrationTimes = new double[RUNS];
+        long calibrationArea = (long) CALIBRATION.length * CALIBRATION[0].length;
+        try {
+            for (int k = -WARMUP; k < RUNS; k++) {
+                Image[] images = new Image[reps];
+                for (int r = 0; r < reps; r++)
+                    images[r] = imageOf(pixels);
+                Drawing[] drawings = new Drawing[reps];
+                // Start each sample with a clean heap, so that a collection
+                // of earlier garbage doesn't land in the middle of it.
+                System.gc();
+                long calibrationStart = THREADS.getCurrentThreadCpuTime();
+                sink += calibrate();
+                long start = THREADS.getCurrentThreadCpuTime();
+                for (int r = 0; r < reps; r++)
+                    drawings[r] = images[r].compress();
+                long middle = THREADS.getCurrentThreadCpuTime();
+                for (int r = 0; r < reps; r++)
+                    drawings[r].draw();
+                long end = THREADS.getCurrentThreadCpuTime();
+                if (k >= 0) {
+                    compressTimes[k] = (double) (middle - start) / reps;
+                    drawTimes[k] = (double) (end - middle) / reps;
+                    calibrationTimes[k] = start - calibrationStart;
+                }
+            }
+
+            // Count allocations on a single fresh run, once everything is
+            // warmed up.
+            long tid = Thread.currentThread().getId();
+            Image image = imageOf(pixels);
+            long before = THREADS.getThreadAllocatedBytes(tid);
+            Drawing d = image.compress();
+            long between = THREADS.getThreadAllocatedBytes(tid);
+            d.draw();
+            long after = THREADS.getThreadAllocatedBytes(tid);
+            m.compressBytesPerPixel = (double) (between - before) / area;
+            m.drawBytesPerPixel = (double) (after - between) / area;
+        } catch (BadCommand e) {
+            fail(name + ": " + e.getMessage());
+            return null;
+        }
+        m.compressPixelsPerSecond = area / (Math.max(median(compressTimes), 1) / 1e9);
+        m.drawPixelsPerSecond = area / (Math.max(median(drawTimes), 1) / 1e9);
+        // Anything else running only ever slows a sample down, so compare the
+        // fastest samples of each rather than the medians.
+        double calibrationTime = Math.max(min(calibrationTimes), 1) / calibrationArea;
+        m.compressRelative = calibrationTime / (Math.max(min(compressTimes), 1) / area);
+        m.drawRelative = calibrationTime / (Math.max(min(drawTimes), 1) / area);
+        return m;
+    }
+
+    // Copy the calibration image and count its runs, roughly the memory and
+    // scanning work that compress() does per pixel.
+    private static long calibrate() {
+        long runs = 0;
+        for (int[] line : CALIBRATION) {
+            int[] row = line.clone();
+            for (int j = 0; j < row.length; j = RunScanner.scalarForwardEnd(row, j))
+                runs++;
+        }
+        return runs;
+    }
+
+    private static double min(double[] values) {
+        return Arrays.stream(values).min().getAsDouble();
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static void store(Properties p, String name, Measurement m) {
+        p.setProperty(name + ".commands", Long.toString(m.commands));
+        p.setProperty(name + ".compressBytesPerPixel", Double.toString(m.compressBytesPerPixel));
+        p.setProperty(name + ".drawBytesPerPixel", Double.toString(m.drawBytesPerPixel));
+        p.setProperty(name + ".compressRelativeThroughput", Double.toString(m.compressRelative));
+        p.setProperty(name + ".drawRelativeThroughput", Double.toString(m.drawRelative));
+    }
+
+    private void compare(Properties baseline, String name, Measurement m) {
+        if (baseline.getProperty(name + ".commands") == null)
+            return;
+        long commands = Long.parseLong(baseline.getProperty(name + ".commands"));
+        if (m.commands > commands)
+            fail(name + ": " + m.commands + " commands, up from " + commands);
+        atMost(name, "compress allocation", m.compressBytesPerPixel,
+                baseline, name + ".compressBytesPerPixel");
+        atMost(name, "draw allocation", m.drawBytesPerPixel,
+                baseline, name + ".drawBytesPerPixel");
+        atLeast(name, "compress throughput", m.compressRelative,
+                baseline, name + ".compressRelativeThroughput");
+        atLeast(name, "draw throughput", m.drawRelative,
+                baseline, name + ".drawRelativeThroughput");
+    }
+
+    private static boolean belowFloor(Properties baseline, String name, Measurement m) {
+        String compress = baseline.getProperty(name + ".compressRelativeThroughput");
+        String draw = baseline.getProperty(name + ".drawRelativeThroughput");
+        return compress != null && m.compressRelative < Double.parseDouble(compress) * THROUGHPUT_FLOOR
+                || draw != null && m.drawRelative < Double.parseDouble(draw) * THROUGHPUT_FLOOR;
+    }
+
+    private void atMost(String name, String what, double value, Properties baseline, String key) {
+        double limit = Double.parseDouble(baseline.getProperty(key)) * ALLOC_SLACK;
+        // Allow a few bytes per pixel on tiny images, where fixed costs dominate.
+        if (value > limit + 1)
+            fail(String.format("%s: %s %.1f bytes/pixel, over the limit of %.1f", name, what, value, limit));
+    }
+
+    private void atLeast(String name, String what, double value, Properties baseline, String key) {
+        double floor = Double.parseDouble(baseline.getProperty(key)) * THROUGHPUT_FLOOR;
+        if (value < floor)
+            fail(String.format("%s: %s %.3f times calibration speed, under the floor of %.3f",
+                    name, what, value, floor));
+    }
+
+    // Hold one of the course test images to its target number of commands.
+    private void checkCourseImage(String filename, int target) {
+        if (!new File(filename).exists()) {
+            skipped++;
+            System.out.println("SKIP " + filename + " (not found)");
+            return;
+        }
+        try {
+            Image image = new Image(filename);
+            Drawing d = image.compress();
+            if (!d.draw().samePixels(image))
+                fail(filename + ": drawing does not reproduce the image");
+            if (d.getCommandsLength() > target)
+                fail(filename + ": " + d.getCommandsLength() + " commands, target is " + target);
+            else
+                System.out.println(filename + ": " + d.getCommandsLength() + " commands (target " + target + ")");
+        } catch (IOException | BadCommand e) {
+            fail(filename + ": " + e.getMessage());
+        }
+    }
+
+    // Make a synthetic image of the given kind.
+    static int[][] generate(String kind, int height, int width, Random random) {
+        int[][] pixels = new int[height][width];
+        switch (kind) {
+            case "noise":
+                // Every pixel independent, the worst case for RLE
+                for (int[] row : pixels)
+                    for (int j = 0; j < width; j++)
+                        row[j] = random.nextInt(16);
+                break;
+            case "stripes":
+                // Horizontal bands of random heights, with the odd vertical bar
+                for (int i = 0; i < height; ) {
+                    int band = 1 + random.nextInt(Math.max(1, height / 8));
+                    int colour = random.nextInt(16);
+                    for (int k = i; k < Math.min(height, i + band); k++)
+                        Arrays.fill(pixels[k], colour);
+                    i += band;
+                }
+                for (int bars = random.nextInt(4); bars > 0; bars--) {
+                    int j = random.nextInt(width);
+                    int colour = random.nextInt(16);
+                    for (int[] row : pixels)
+                        row[j] = colour;
+                }
+                break;
+            case "blobs":
+                // Overlapping flat rectangles on a plain background
+                int background = random.nextInt(16);
+                for (int[] row : pixels)
+                    Arrays.fill(row, background);
+                for (int blobs = 4 + random.nextInt(12); blobs > 0; blobs--) {
+                    int top = random.nextInt(height);
+                    int left = random.nextInt(width);
+                    int bottom = Math.min(height, top + 1 + random.nextInt(Math.max(1, height / 3)));
+                    int right = Math.min(width, left + 1 + random.nextInt(Math.max(1, width / 3)));
+                    int colour = random.nextInt(16);
+                    for (int i = top; i < bottom; i++)
+                        Arrays.fill(pixels[i], left, right, colour);
+                }
+                break;
+            case "pixel-art":
+                // A small sprite with a few colours, scaled up in blocks
+                int scale = Math.max(1, Math.min(height, width) / 16);
+                int[][] sprite = new int[(height + scale - 1) / scale][(width + scale - 1) / scale];
+                int[] palette = {random.nextInt(16), random.nextInt(16), random.nextInt(16), random.nextInt(16)};
+                for (int[] row : sprite)
+                    for (int j = 0; j < row.length; j++)
+                        row[j] = palette[random.nextInt(8) < 5 ? 0 : random.nextInt(4)];
+                for (int i = 0; i < height; i++)
+                    for (int j = 0; j < width; j++)
+                        pixels[i][j] = sprite[i / scale][j / scale];
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown image kind: " + kind);
+        }
+        return pixels;
+    }
+}
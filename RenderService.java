@@ -0,0 +1,213 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+// A pool of pixel buffers, bucketed by their dimensions, so that rendering
+// many drawings of the same size doesn't allocate a fresh int[][] every time.
+// Each bucket only keeps a limited number of idle buffers around, and the
+// pool as a whole keeps at most a given number of idle pixels, dropping the
+// least recently used sizes first. Anything beyond that is left for the
+// garbage collector.
+class PixelBufferPool {
+
+    // Idle buffers by size, least recently used first
+    private final LinkedHashMap<Long, ArrayDeque<int[][]>> buckets = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxIdlePerBucket;
+    private final long maxIdlePixels;
+    private long idlePixels = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    PixelBufferPool(int maxIdlePerBucket, long maxIdlePixels) {
+        this.maxIdlePerBucket = maxIdlePerBucket;
+        this.maxIdlePixels = maxIdlePixels;
+    }
+
+    //Packs the dimensions into a single key.
+    private static long key(int height, int width) {
+        return ((long) height << 32) | (width & 0xffffffffL);
+    }
+
+    // Take a buffer of the given dimensions out of the pool, or allocate a new
+    // one if none are idle. The contents are not cleared.
+    int[][] acquire(int height, int width) {
+        synchronized (this) {
+            ArrayDeque<int[][]> bucket = buckets.get(key(height, width));
+            int[][] buffer = bucket == null ? null : bucket.poll();
+            if (buffer != null) {
+                idlePixels -= (long) height * width;
+                hits.incrementAndGet();
+                return buffer;
+            }
+        }
+        misses.incrementAndGet();
+        return new int[height][width];
+    }
+
+    // Give a buffer back so later renders of the same size can reuse it.
+    synchronized void release(int[][] buffer) {
+        if (buffer.length == 0)
+            return;
+        long area = (long) buffer.length * buffer[0].length;
+        if (area > maxIdlePixels)
+            return;
+        ArrayDeque<int[][]> bucket = buckets.computeIfAbsent(key(buffer.length, buffer[0].length),
+                k -> new ArrayDeque<int[][]>());
+        if (bucket.size() >= maxIdlePerBucket)
+            return;
+        bucket.push(buffer);
+        idlePixels += area;
+        // Make room by dropping whole buckets, least recently used first. The
+        // bucket just used is last, so it only loses buffers if it is over the
+        // limit on its own.
+        Iterator<ArrayDeque<int[][]>> oldest = buckets.values().iterator();
+        while (idlePixels > maxIdlePixels) {
+            ArrayDeque<int[][]> b = oldest.next();
+            while (!b.isEmpty() && idlePixels > maxIdlePixels) {
+                int[][] dropped = b.removeLast();
+                idlePixels -= (long) dropped.length * dropped[0].length;
+            }
+            if (b.isEmpty())
+                oldest.remove();
+        }
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    //Number of pixels held in idle buffers.
+    synchronized long idlePixels() {
+        return idlePixels;
+    }
+}
+
+// Renders many drawings at once on a fixed pool of worker threads. The images
+// are drawn into recycled pixel buffers, so each image is only valid inside
+// the callback it is handed to; once the callback returns, its buffer goes
+// back into the pool.
+public class RenderService implements AutoCloseable {
+
+    private final ThreadPoolExecutor executor;
+    private final PixelBufferPool pool;
+    private final AtomicLong rendered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong pixels = new AtomicLong();
+    private final long started = System.nanoTime();
+
+    // Idle pixels kept for reuse by default, 64 MB of buffers
+    static final long MAX_IDLE_PIXELS = 1L << 24;
+
+    // Render on the given number of threads, keeping at most maxIdlePixels
+    // pixels of idle buffers between renders.
+    public RenderService(int threads, long maxIdlePixels) {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        pool = new PixelBufferPool(threads * 2, maxIdlePixels);
+    }
+
+    public RenderService(int threads) {
+        this(threads, MAX_IDLE_PIXELS);
+    }
+
+    public RenderService() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    // Queue a drawing to be rendered and pass the resulting image to the sink.
+    // The returned future completes once the sink has returned, or
+    // exceptionally with BadCommand if the drawing paints out of bounds.
+    public CompletableFuture<Void> render(Drawing d, Consumer<Image> sink) {
+        return CompletableFuture.runAsync(() -> {
+            int[][] buffer = pool.acquire(d.height, d.width);
+            try {
+                Image image = d.draw(new Image(buffer, d.background));
+                sink.accept(image);
+                rendered.incrementAndGet();
+                pixels.addAndGet((long) d.height * d.width);
+            } catch (BadCommand e) {
+                failed.incrementAndGet();
+                throw new CompletionException(e);
+            } finally {
+                pool.release(buffer);
+            }
+        }, executor);
+    }
+
+    // Render every drawing and wait for all of them to finish. The sink may be
+    // called from several threads at once.
+    public void renderAll(Collection<Drawing> drawings, BiConsumer<Drawing, Image> sink) throws BadCommand {
+        ArrayList<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+        for (Drawing d : drawings)
+            pending.add(render(d, image -> sink.accept(d, image)));
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof BadCommand)
+                throw (BadCommand) e.getCause();
+            throw e;
+        }
+    }
+
+    //Number of drawings rendered successfully so far.
+    public long rendered() {
+        return rendered.get();
+    }
+
+    //Number of drawings that failed with a BadCommand.
+    public long failed() {
+        return failed.get();
+    }
+
+    //Number of drawings waiting for a free worker.
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    //Fraction of renders that got their buffer from the pool.
+    public double poolHitRate() {
+        long hits = pool.hits();
+        long total = hits + pool.misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    //Bytes of pixel buffers the pool is holding on to for reuse.
+    public long pooledBytes() {
+        return pool.idlePixels() * Integer.BYTES;
+    }
+
+    //Drawings rendered per second since the service started.
+    public double drawingsPerSecond() {
+        return rendered.get() / elapsedSeconds();
+    }
+
+    //Pixels rendered per second since the service started.
+    public double pixelsPerSecond() {
+        return pixels.get() / elapsedSeconds();
+    }
+
+    private double elapsedSeconds() {
+        return Math.max(System.nanoTime() - started, 1) / 1e9;
+    }
+
+    public String toString() {
+        return String.format("rendered %d (%d failed), %.1f drawings/s, %.0f pixels/s, queue %d, pool hits %.1f%% (%d bytes pooled)",
+                rendered(), failed(), drawingsPerSecond(), pixelsPerSecond(), queueDepth(), poolHitRate() * 100,
+                pooledBytes());
+    }
+
+    // Stop accepting work and wait for queued renders to finish.
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
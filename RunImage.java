@@ -0,0 +1,275 @@
+import java.util.*;
+
+// An image stored as runs rather than pixels. Each row is a list of
+// (colour, length) pairs kept in primitive arrays, with neighbouring runs
+// always of different colours. For images that are mostly large flat areas
+// this takes memory in proportion to the number of runs rather than the
+// number of pixels, and painting a span or compressing the image takes time
+// in proportion to the runs it touches.
+public class RunImage implements Canvas {
+
+    private final int height;
+    private final int width;
+    // The runs of each row, with only the first counts[y] entries used
+    private final int[][] colours;
+    private final int[][] lengths;
+    private final int[] counts;
+    // Scratch space for the runs being spliced in by paintRow, at most 3
+    private final int[] spliceColours = new int[3];
+    private final int[] spliceLengths = new int[3];
+
+    // Create a solid image with given dimensions and colour
+    public RunImage(int height, int width, int colour) {
+        this.height = height;
+        this.width = width;
+        colours = new int[height][];
+        lengths = new int[height][];
+        counts = new int[height];
+        for (int y = 0; y < height; y++) {
+            colours[y] = new int[] {colour};
+            lengths[y] = new int[] {width};
+            counts[y] = 1;
+        }
+    }
+
+    // Convert a dense image into runs.
+    public RunImage(Image image) {
+        int[][] pixels = image.buffer();
+        height = pixels.length;
+        width = pixels[0].length;
+        colours = new int[height][];
+        lengths = new int[height][];
+        counts = new int[height];
+        int[] rowColours = new int[width];
+        int[] rowLengths = new int[width];
+        for (int y = 0; y < height; y++) {
+            int[] row = pixels[y];
+            int n = 0;
+            for (int x = 0; x < width; n++) {
+                int end = RunScanner.scalarForwardEnd(row, x);
+                rowColours[n] = row[x];
+                rowLengths[n] = end - x;
+                x = end;
+            }
+            colours[y] = Arrays.copyOf(rowColours, n);
+            lengths[y] = Arrays.copyOf(rowLengths, n);
+            counts[y] = n;
+        }
+    }
+
+    // Convert back into a dense image.
+    public Image toImage() {
+        Image image = new Image(new int[height][width], 0);
+        int[][] pixels = image.buffer();
+        for (int y = 0; y < height; y++) {
+            int x = 0;
+            for (int k = 0; k < counts[y]; k++) {
+                Arrays.fill(pixels[y], x, x + lengths[y][k], colours[y][k]);
+                x += lengths[y][k];
+            }
+        }
+        return image;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    //Total number of runs over all of the rows.
+    public long runCount() {
+        long total = 0;
+        for (int n : counts)
+            total += n;
+        return total;
+    }
+
+    public void paint(int y, int x, int colour) throws BadCommand {
+        paintRow(y, x, x, colour);
+    }
+
+    // Paint a span by splicing a new run into the row in place of the runs it
+    // covers, keeping what is left of the runs at either end and merging with
+    // any neighbour of the same colour.
+    public void paintRow(int y, int from, int to, int colour) throws BadCommand {
+        if (y < 0 || y >= height || from < 0 || to >= width || from > to)
+            throw new BadCommand("Tried to paint of out bounds.");
+        int[] cs = colours[y];
+        int[] ls = lengths[y];
+        int n = counts[y];
+
+        // Find the runs a and b holding the ends of the span, and their starts.
+        int a = 0;
+        int startA = 0;
+        while (startA + ls[a] <= from)
+            startA += ls[a++];
+        int b = a;
+        int startB = startA;
+        while (startB + ls[b] <= to)
+            startB += ls[b++];
+        if (a == b && cs[a] == colour)
+            return;
+
+        // Work out what replaces runs lo to hi: the start of run a, the span
+        // and the end of run b, taking in a neighbour if the span reaches it
+        // in case it has the same colour.
+        int leftLength = from - startA;
+        int rightLength = startB + ls[b] - 1 - to;
+        int lo = a;
+        int hi = b;
+        int r = 0;
+        if (leftLength == 0 && lo > 0) {
+            lo--;
+            r = splice(r, cs[lo], ls[lo]);
+        }
+        if (leftLength > 0)
+            r = splice(r, cs[a], leftLength);
+        r = splice(r, colour, to - from + 1);
+        if (rightLength > 0)
+            r = splice(r, cs[b], rightLength);
+        if (rightLength == 0 && hi < n - 1) {
+            hi++;
+            r = splice(r, cs[hi], ls[hi]);
+        }
+
+        int newCount = n - (hi - lo + 1) + r;
+        if (newCount > cs.length) {
+            int capacity = Math.max(newCount, cs.length * 2);
+            cs = colours[y] = Arrays.copyOf(cs, capacity);
+            ls = lengths[y] = Arrays.copyOf(ls, capacity);
+        }
+        System.arraycopy(cs, hi + 1, cs, lo + r, n - hi - 1);
+        System.arraycopy(ls, hi + 1, ls, lo + r, n - hi - 1);
+        System.arraycopy(spliceColours, 0, cs, lo, r);
+        System.arraycopy(spliceLengths, 0, ls, lo, r);
+        counts[y] = newCount;
+    }
+
+    // Add a run to the scratch space, merging it with the last one if they
+    // have the same colour. Returns the new number of runs.
+    private int splice(int r, int colour, int length) {
+        if (r > 0 && spliceColours[r - 1] == colour) {
+            spliceLengths[r - 1] += length;
+            return r;
+        }
+        spliceColours[r] = colour;
+        spliceLengths[r] = length;
+        return r + 1;
+    }
+
+    // Compress straight from the runs, without expanding the pixels. The rows
+    // are scanned as they are; the columns are worked out by comparing the
+    // runs of each row with the row above.
+    public Drawing compress() {
+        return Image.compress(rows(), columns());
+    }
+
+    // The rows as a scanner for the compression.
+    RunLines rows() {
+        int[][] starts = new int[height][];
+        for (int y = 0; y < height; y++) {
+            starts[y] = new int[counts[y] + 1];
+            for (int k = 0; k < counts[y]; k++)
+                starts[y][k + 1] = starts[y][k] + lengths[y][k];
+        }
+        return new RunLines(colours, starts, counts, width);
+    }
+
+    // The runs down each column. Every column starts a run at the top, and then
+    // only the stretches where a row differs from the one above start new
+    // runs, so the cost follows the number of column runs rather than the
+    // number of pixels.
+    RunLines columns() {
+        int[][] columnColours = new int[width][];
+        int[][] columnStarts = new int[width][];
+        int[] columnCounts = new int[width];
+        for (int y = 0; y < height; y++) {
+            int k = 0;
+            int x = 0;
+            if (y == 0) {
+                for (; k < counts[0]; x += lengths[0][k++])
+                    for (int j = x; j < x + lengths[0][k]; j++) {
+                        columnColours[j] = new int[] {colours[0][k], 0};
+                        columnStarts[j] = new int[] {0, 0};
+                        columnCounts[j] = 1;
+                    }
+                continue;
+            }
+            // Walk the runs of this row and the one above together.
+            int above = 0;
+            int aboveEnd = lengths[y - 1][0];
+            int end = lengths[y][0];
+            while (x < width) {
+                int next = Math.min(end, aboveEnd);
+                int colour = colours[y][k];
+                if (colour != colours[y - 1][above]) {
+                    for (int j = x; j < next; j++) {
+                        int n = columnCounts[j];
+                        if (n + 1 >= columnStarts[j].length) {
+                            columnColours[j] = Arrays.copyOf(columnColours[j], n * 2 + 2);
+                            columnStarts[j] = Arrays.copyOf(columnStarts[j], n * 2 + 2);
+                        }
+                        columnColours[j][n] = colour;
+                        columnStarts[j][n] = y;
+                        columnCounts[j] = n + 1;
+                    }
+                }
+                x = next;
+                if (x == end && x < width)
+                    end += lengths[y][++k];
+                if (x == aboveEnd && x < width)
+                    aboveEnd += lengths[y - 1][++above];
+            }
+        }
+        // Close off every column at the bottom of the image.
+        for (int j = 0; j < width; j++)
+            columnStarts[j][columnCounts[j]] = height;
+        return new RunLines(columnColours, columnStarts, columnCounts, height);
+    }
+}
+
+// Lines of an image given as runs: the colour of each run and where it starts,
+// with an extra start at the end equal to the length of the line.
+class RunLines implements LineScanner {
+
+    private final int[][] colours;
+    private final int[][] starts;
+    private final int[] counts;
+    private final int length;
+
+    RunLines(int[][] colours, int[][] starts, int[] counts, int length) {
+        this.colours = colours;
+        this.starts = starts;
+        this.counts = counts;
+        this.length = length;
+    }
+
+    public int count() {
+        return counts.length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int colour(int line, int index) {
+        return colours[line][run(line, index)];
+    }
+
+    public int forwardEnd(int line, int from) {
+        return starts[line][run(line, from) + 1];
+    }
+
+    public int backwardEnd(int line, int from) {
+        return starts[line][run(line, from)] - 1;
+    }
+
+    // The run holding the given index.
+    private int run(int line, int index) {
+        int k = Arrays.binarySearch(starts[line], 0, counts[line], index);
+        return k >= 0 ? k : -k - 2;
+    }
+}
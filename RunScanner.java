@@ -0,0 +1,67 @@
+// The lines (rows or columns) of an image as seen by the RLE compression,
+// which only needs to know the colour at a position and where each run of a
+// single colour ends.
+interface LineScanner {
+
+    //Number of lines.
+    int count();
+
+    //Number of pixels in each line.
+    int length();
+
+    int colour(int line, int index);
+
+    // The first index after "from" whose colour differs from the one at
+    // "from", or the length of the line if the run goes to the end.
+    int forwardEnd(int line, int from);
+
+    // The last index before "from" whose colour differs from the one at
+    // "from", or -1 if the run goes back to the start of the line.
+    int backwardEnd(int line, int from);
+}
+
+// Finds where runs of a single colour end along the lines of a dense image.
+class RunScanner implements LineScanner {
+
+    private final int[][] lines;
+
+    RunScanner(int[][] lines) {
+        this.lines = lines;
+    }
+
+    public int count() {
+        return lines.length;
+    }
+
+    public int length() {
+        return lines[0].length;
+    }
+
+    public int colour(int line, int index) {
+        return lines[line][index];
+    }
+
+    public int forwardEnd(int line, int from) {
+        return scalarForwardEnd(lines[line], from);
+    }
+
+    public int backwardEnd(int line, int from) {
+        return scalarBackwardEnd(lines[line], from);
+    }
+
+    static int scalarForwardEnd(int[] line, int from) {
+        int colour = line[from];
+        int j = from + 1;
+        while (j < line.length && line[j] == colour)
+            j++;
+        return j;
+    }
+
+    static int scalarBackwardEnd(int[] line, int from) {
+        int colour = line[from];
+        int j = from - 1;
+        while (j >= 0 && line[j] == colour)
+            j--;
+        return j;
+    }
+}